@@ -1,5 +1,7 @@
 package lv.ideaportriga.blinds.controller;
 
+import android.Manifest;
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -12,12 +14,15 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.ParcelUuid;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +34,16 @@ import java.util.concurrent.locks.ReentrantLock;
 
 public class Bluetooth {
     private static final ParcelUuid SERVICE_UUID = ParcelUuid.fromString("D973F2E0-B19E-11E2-9E96-0800200C9A66");
+    private static final ParcelUuid DFU_SERVICE_UUID = ParcelUuid.fromString("D973F2E3-B19E-11E2-9E96-0800200C9A66");
+    private static final ParcelUuid DFU_CONTROL_UUID = ParcelUuid.fromString("D973F2E4-B19E-11E2-9E96-0800200C9A66");
+    private static final ParcelUuid DFU_PACKET_UUID = ParcelUuid.fromString("D973F2E5-B19E-11E2-9E96-0800200C9A66");
     private final int CONN_RETRY_INTERVAL = 3000; // 3 Seconds
+    private static final int UNSUBSCRIBE_GRACE = 30000; // 30 Seconds
+    private static final int COMMAND_TIMEOUT = 60000; // 60 Seconds for motor to reach the target
+    private final int BROADCAST_WINDOW = 2000; // 2 Seconds to confirm broadcast command
+    private static final String BROADCAST_PREFS = "broadcast";
+    private static final String BROADCAST_SEQ = "seq"; // last sequence number sent
+    private final int MAX_PARALLEL_UPDATES = 3; // firmware updates sharing the radio with other connections
     private Handler handler = new Handler();
     private final ReentrantLock lock = new ReentrantLock();
     private BluetoothManager mBluetoothManager;
@@ -37,12 +51,23 @@ public class Bluetooth {
     private BluetoothCallback callback;
     private Context context;
     private boolean activated = false;
+    private BroadcastEngine broadcaster = null; // null means broadcast commands are not enabled
+    private final DfuScheduler updates;
     private static class State {
         private BluetoothGatt gatt;
         private boolean expectDisconnect = false;
         private BluetoothGattCharacteristic txChar;
+        private BluetoothGattCharacteristic rxChar;
         private Integer towrite = null; // null means no write needed
         private Integer written = null; // null means no write needed
+        private int watchers = 0; // UI screens or bridge clients looking at this device
+        private long lastDemand = 0; // uptime of the last command end or unwatch
+        private long commandStart = 0; // uptime of the command in progress, 0 means none
+        private boolean subscribed = false; // notifications enabled on rxChar
+        private DfuSession dfu = null; // null means no firmware update in progress
+        private BluetoothGattCharacteristic dfuControl;
+        private BluetoothGattCharacteristic dfuPacket;
+        private boolean dfuNotifying = false; // notifications enabled on dfuControl
 
         public boolean isExpectDisconnect() {
             return expectDisconnect;
@@ -80,6 +105,85 @@ public class Bluetooth {
         public BluetoothGattCharacteristic getTxChar() {
             return txChar;
         }
+        public void setRxChar(BluetoothGattCharacteristic rxChar) {
+            this.rxChar = rxChar;
+        }
+        public BluetoothGattCharacteristic getRxChar() {
+            return rxChar;
+        }
+
+        public int getWatchers() {
+            return watchers;
+        }
+
+        public void setWatchers(int watchers) {
+            this.watchers = watchers;
+        }
+
+        public long getLastDemand() {
+            return lastDemand;
+        }
+
+        public void setLastDemand(long lastDemand) {
+            this.lastDemand = lastDemand;
+        }
+
+        public long getCommandStart() {
+            return commandStart;
+        }
+
+        public void setCommandStart(long commandStart) {
+            this.commandStart = commandStart;
+        }
+
+        public boolean isSubscribed() {
+            return subscribed;
+        }
+
+        public void setSubscribed(boolean subscribed) {
+            this.subscribed = subscribed;
+        }
+
+        public DfuSession getDfu() {
+            return dfu;
+        }
+
+        public void setDfu(DfuSession dfu) {
+            this.dfu = dfu;
+        }
+
+        public BluetoothGattCharacteristic getDfuControl() {
+            return dfuControl;
+        }
+
+        public void setDfuControl(BluetoothGattCharacteristic dfuControl) {
+            this.dfuControl = dfuControl;
+        }
+
+        public BluetoothGattCharacteristic getDfuPacket() {
+            return dfuPacket;
+        }
+
+        public void setDfuPacket(BluetoothGattCharacteristic dfuPacket) {
+            this.dfuPacket = dfuPacket;
+        }
+
+        public boolean isDfuNotifying() {
+            return dfuNotifying;
+        }
+
+        public void setDfuNotifying(boolean dfuNotifying) {
+            this.dfuNotifying = dfuNotifying;
+        }
+
+        /**
+         * Notifications are wanted while someone watches the device, while a command
+         * is moving the motor, and for a grace period after either of those ends.
+         */
+        public boolean isDemanded(long now) {
+            return watchers > 0 || (commandStart != 0 && now - commandStart < COMMAND_TIMEOUT)
+                    || now - lastDemand < UNSUBSCRIBE_GRACE;
+        }
 
     }
     private Map<BluetoothDevice, State> state = new HashMap<>();
@@ -90,6 +194,12 @@ public class Bluetooth {
         mBluetoothAdapter = manager.getAdapter();
         callback = cb;
         context = ctx;
+        updates = new DfuScheduler(MAX_PARALLEL_UPDATES, new DfuScheduler.Starter() {
+            @Override
+            public void start(DfuSession session) {
+                startUpdate(session);
+            }
+        });
         // Start periodic reconnection attempts.
         //handler.postAtTime(mAutoReconnectionHandler, System.currentTimeMillis()+CONN_RETRY_INTERVAL);
         handler.postDelayed(mAutoReconnectionHandler, CONN_RETRY_INTERVAL);
@@ -97,6 +207,7 @@ public class Bluetooth {
 
     private Runnable mAutoReconnectionHandler = new Runnable(){
         public void run() {
+            List<DfuSession> resume = new ArrayList<>();
             lock.lock();
             try {
                 if(activated) {
@@ -104,8 +215,15 @@ public class Bluetooth {
                         if (e.getValue().getGatt() == null) {
                             e.getValue().setExpectDisconnect(false);
                             e.getValue().setGatt(createGatt(e.getKey()));
-                        } else if(e.getValue().getTxChar() != null) {
-                            // write any pending writes.
+                        } else if (e.getValue().getDfu() != null) {
+                            // leave the link to the firmware update
+                            if (e.getValue().isDfuNotifying()) {
+                                resume.add(e.getValue().getDfu());
+                            } else {
+                                enableDfu(e.getKey());
+                            }
+                        } else if (!updateSubscription(e.getKey()) && e.getValue().getTxChar() != null) {
+                            // write any pending writes, otherwise chained after the subscription
                             write(e.getKey(), e.getValue().getTxChar());
                         }
                     }
@@ -114,6 +232,11 @@ public class Bluetooth {
                 lock.unlock();
                 handler.postDelayed(mAutoReconnectionHandler, CONN_RETRY_INTERVAL);
             }
+            // outside of the lock, sessions call back into the transport
+            for (DfuSession session : resume) {
+                session.checkStalled(); // lost responses and write callbacks
+                session.start(); // retries writes the stack was too busy to accept
+            }
         }
     };
 
@@ -155,6 +278,303 @@ public class Bluetooth {
 
     }
 
+    /**
+     * Marks device as being looked at (visible on screen, watched by a bridge client).
+     * Notifications stay enabled until every watcher has called {@link #unwatch}.
+     */
+    public void watch(BluetoothDevice d) {
+        lock.lock();
+        try {
+            State s = state.get(d);
+            if(s != null) {
+                s.setWatchers(s.getWatchers() + 1);
+                updateSubscription(d);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void unwatch(BluetoothDevice d) {
+        lock.lock();
+        try {
+            State s = state.get(d);
+            if(s != null && s.getWatchers() > 0) {
+                s.setWatchers(s.getWatchers() - 1);
+                // start grace period, notifications are dropped by the reconnection handler
+                s.setLastDemand(SystemClock.uptimeMillis());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables connectionless group commands signed with key. Needs API 21 and location
+     * permission for scanning acks, without them {@link #broadcast(int)} falls back to GATT writes.
+     *
+     * @param manufacturerId company ID assigned to the blinds vendor by Bluetooth SIG
+     */
+    @TargetApi(21)
+    public void enableBroadcast(int manufacturerId, byte[] key) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+        if (context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED
+                && context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            // scans return nothing without it, every broadcast would end in GATT fallback
+            Log.e("enableBroadcast", "No location permission, broadcast disabled");
+            return;
+        }
+        final LeAdvertiser advertiser = new LeAdvertiser(mBluetoothAdapter, manufacturerId);
+        lock.lock();
+        try {
+            // blinds ignore commands not newer than the last one, never go back to a used number
+            long persisted = context.getSharedPreferences(BROADCAST_PREFS, Context.MODE_PRIVATE)
+                    .getLong(BROADCAST_SEQ, 0);
+            long last = Math.max(persisted, System.currentTimeMillis() / 1000 - 1);
+            final BroadcastEngine engine = new BroadcastEngine(key, last,
+                    advertiser, new LeScanner(mBluetoothAdapter, manufacturerId),
+                    new BroadcastEngine.Fallback() {
+                        @Override
+                        public void write(String address, int val) {
+                            BluetoothDevice d = findDevice(address);
+                            if (d != null) {
+                                lock.lock();
+                                try {
+                                    State s = state.get(d);
+                                    if (s != null) {
+                                        s.setWritten(null); // marked written by broadcast, force GATT write
+                                    }
+                                } finally {
+                                    lock.unlock();
+                                }
+                                Bluetooth.this.write(d, val);
+                            }
+                        }
+                    });
+            advertiser.setOnFailure(new Runnable() {
+                @Override
+                public void run() {
+                    engine.onAdvertiseFailed();
+                }
+            });
+            broadcaster = engine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves all known blinds at once. Blinds that do not confirm the advertised command
+     * within {@link #BROADCAST_WINDOW}, by ack advertisement or by a notification of the
+     * new position, are written over GATT.
+     */
+    public void broadcast(int val) {
+        BroadcastEngine b;
+        List<String> addresses = new ArrayList<>();
+        lock.lock();
+        try {
+            b = broadcaster;
+            if (b != null) {
+                for (Map.Entry<BluetoothDevice, State> e : state.entrySet()) {
+                    addresses.add(e.getKey().getAddress());
+                    // supersedes pending GATT writes, so the reconnection handler does not undo the move
+                    Integer v = val;
+                    e.getValue().setTowrite(v);
+                    e.getValue().setWritten(v);
+                    // command in progress, connected blinds subscribe and confirm by notification
+                    e.getValue().setCommandStart(SystemClock.uptimeMillis());
+                    updateSubscription(e.getKey());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (b == null) {
+            for (BluetoothDevice d : getDevices()) {
+                write(d, val);
+            }
+            return;
+        }
+        final BroadcastEngine engine = b;
+        final long seq = engine.send(BroadcastCommand.GROUP_ALL, addresses, val);
+        if (seq >= 0) {
+            context.getSharedPreferences(BROADCAST_PREFS, Context.MODE_PRIVATE).edit()
+                    .putLong(BROADCAST_SEQ, seq).apply();
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    engine.finish(seq);
+                }
+            }, BROADCAST_WINDOW);
+        }
+    }
+
+    /**
+     * Updates firmware of given blinds, at most {@link #MAX_PARALLEL_UPDATES} at a time.
+     * An update interrupted by a disconnect resumes when the blind is reconnected.
+     */
+    public void update(Collection<BluetoothDevice> devices, byte[] image, final DfuSession.Listener listener) {
+        DfuSession.Listener l = new DfuSession.Listener() {
+            @Override
+            public void onProgress(DfuSession session, int sent, int total) {
+                listener.onProgress(session, sent, total);
+            }
+
+            @Override
+            public void onComplete(DfuSession session) {
+                finishUpdate(session);
+                listener.onComplete(session);
+            }
+
+            @Override
+            public void onError(DfuSession session, String reason) {
+                finishUpdate(session);
+                listener.onError(session, reason);
+            }
+        };
+        for (BluetoothDevice d : devices) {
+            updates.add(new DfuSession(d.getAddress(), image, new GattDfuTransport(d), l));
+        }
+    }
+
+    private void startUpdate(DfuSession session) {
+        String error = "Unknown device";
+        lock.lock();
+        try {
+            BluetoothDevice d = findDevice(session.getAddress());
+            State s = d != null ? state.get(d) : null;
+            if (s != null && s.getDfu() != null && s.getDfu() != session) {
+                error = "Update already in progress";
+            } else if (s != null && s.getTxChar() != null && (s.getDfuControl() == null || s.getDfuPacket() == null)) {
+                error = "No DFU service"; // services already discovered without it
+            } else if (s != null) {
+                s.setDfu(session);
+                s.setExpectDisconnect(false);
+                if (s.getGatt() == null) {
+                    s.setGatt(createGatt(d)); // update starts once DFU service is discovered
+                } else {
+                    enableDfu(d);
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Log.e("startUpdate", error + " " + session.getAddress());
+        session.abort(error); // frees the slot through finishUpdate
+    }
+
+    private void finishUpdate(DfuSession session) {
+        lock.lock();
+        try {
+            for (State s : state.values()) {
+                if (s.getDfu() == session) {
+                    s.setDfu(null);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        updates.done(session);
+    }
+
+    /**
+     * Enables control point notifications, update is started from onDescriptorWrite.
+     */
+    private void enableDfu(BluetoothDevice d) {
+        State s = state.get(d);
+        if (s == null || s.getGatt() == null || s.getDfuControl() == null || s.isDfuNotifying()) {
+            return;
+        }
+        BluetoothGattCharacteristic c = s.getDfuControl();
+        s.getGatt().setCharacteristicNotification(c, true);
+        c.getDescriptors().get(0).setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        s.getGatt().writeDescriptor(c.getDescriptors().get(0)); // retried by reconnection handler
+    }
+
+    private BluetoothDevice findDevice(String address) {
+        lock.lock();
+        try {
+            for (BluetoothDevice d : state.keySet()) {
+                if (d.getAddress().equals(address)) {
+                    return d;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private DfuSession getDfu(BluetoothDevice d) {
+        lock.lock();
+        try {
+            State s = state.get(d);
+            return s != null ? s.getDfu() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Firmware update link over the DFU service of a connected blind.
+     */
+    private class GattDfuTransport implements DfuSession.Transport {
+        private final BluetoothDevice device;
+
+        GattDfuTransport(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        @TargetApi(21)
+        public boolean requestMtu(int mtu) {
+            if (Build.VERSION.SDK_INT < 21) {
+                return false;
+            }
+            lock.lock();
+            try {
+                State s = state.get(device);
+                return s != null && s.getGatt() != null && s.getGatt().requestMtu(mtu);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean writeControl(byte[] data) {
+            lock.lock();
+            try {
+                State s = state.get(device);
+                return s != null && write(s, s.getDfuControl(), data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean writePacket(byte[] data) {
+            lock.lock();
+            try {
+                State s = state.get(device);
+                return s != null && write(s, s.getDfuPacket(), data, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean write(State s, BluetoothGattCharacteristic c, byte[] data, int writeType) {
+            if (s.getGatt() == null || c == null) {
+                return false;
+            }
+            c.setWriteType(writeType);
+            c.setValue(data);
+            return s.getGatt().writeCharacteristic(c);
+        }
+    }
+
     private List<BluetoothDevice> listDevices() {
         ArrayList<BluetoothDevice> mylist = new ArrayList<BluetoothDevice>();
         List<BluetoothDevice> devices = mBluetoothManager.getDevicesMatchingConnectionStates(
@@ -195,9 +615,24 @@ public class Bluetooth {
         State s = state.get(d);
         if (s != null) {
             s.setTxChar(null);
+            s.setRxChar(null);
+            s.setSubscribed(false);
+            s.setDfuControl(null);
+            s.setDfuPacket(null);
+            s.setDfuNotifying(false);
             if (s.getGatt() != null) {
-                s.getGatt().close();
+                s.getGatt().close(); // no STATE_DISCONNECTED is delivered after this
                 s.setGatt(null);
+                final DfuSession dfu = s.getDfu();
+                if (dfu != null) {
+                    // posted, session must not be called under the lock
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            dfu.onDisconnected(); // resumed after reconnect
+                        }
+                    });
+                }
             }
         }
     }
@@ -209,11 +644,15 @@ public class Bluetooth {
             if(s != null) {
                 s.setExpectDisconnect(false);
                 s.setTowrite(val);
+                s.setCommandStart(SystemClock.uptimeMillis()); // ends when motor reports val
 
                 if (s.getGatt() == null) {
                     s.setGatt(createGatt(d));
                 } else if (s.getTxChar() != null) { // connected
-                    write(d, s.getTxChar());
+                    // subscribe first so the move is reported, write is chained after it
+                    if (!updateSubscription(d)) {
+                        write(d, s.getTxChar());
+                    }
                 }
             }
         } finally {
@@ -221,9 +660,61 @@ public class Bluetooth {
         }
     }
 
+    /**
+     * Enables or disables notifications according to current demand. Re-subscribing
+     * starts with a single read, the descriptor is written from onCharacteristicRead.
+     * Pending position write is chained after these, see {@link #writePending}.
+     *
+     * @return true if a GATT operation was started
+     */
+    private boolean updateSubscription(BluetoothDevice d) {
+        State s = state.get(d);
+        if (s == null || s.getGatt() == null || s.getRxChar() == null || s.getDfu() != null) {
+            return false; // firmware update owns the GATT queue
+        }
+        BluetoothGattCharacteristic c = s.getRxChar();
+        long now = SystemClock.uptimeMillis();
+        if (s.getCommandStart() != 0 && now - s.getCommandStart() >= COMMAND_TIMEOUT) {
+            // motor never reported the target, end command like a completed one
+            s.setCommandStart(0);
+            s.setLastDemand(now);
+        }
+        boolean demanded = s.isDemanded(now);
+        if (demanded && !s.isSubscribed()) {
+            s.getGatt().setCharacteristicNotification(c, true);
+            if (s.getGatt().readCharacteristic(c)) {
+                s.setSubscribed(true);
+                return true;
+            }
+        } else if (!demanded && s.isSubscribed()) {
+            s.getGatt().setCharacteristicNotification(c, false);
+            c.getDescriptors().get(0).setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            if (s.getGatt().writeDescriptor(c.getDescriptors().get(0))) {
+                s.setSubscribed(false);
+                return true;
+            } // otherwise retry on next reconnection handler run
+        }
+        return false;
+    }
+
+    /**
+     * Writes pending position once the previous GATT operation completed.
+     */
+    private void writePending(BluetoothDevice d) {
+        lock.lock();
+        try {
+            State s = state.get(d);
+            if (s != null && s.getTxChar() != null) {
+                write(d, s.getTxChar());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void write(BluetoothDevice d, BluetoothGattCharacteristic c) {
         State s = state.get(d);
-        if(s != null) {
+        if(s != null && s.getDfu() == null) { // written after firmware update
             if (s.getTowrite() != s.getWritten()) {
                 c.setValue(s.getTowrite(), BluetoothGattCharacteristic.FORMAT_UINT32, 0);
                 if (s.getGatt().writeCharacteristic(c)) {
@@ -268,6 +759,21 @@ public class Bluetooth {
             List<BluetoothGattService> services = gatt.getServices();
             for (BluetoothGattService service : services) {
                 Log.i("SERVICE:", service.getUuid().toString());
+                if (service.getUuid().equals(DFU_SERVICE_UUID.getUuid())) {
+                    lock.lock();
+                    try {
+                        State s = state.get(gatt.getDevice());
+                        if(s != null) {
+                            s.setDfuControl(service.getCharacteristic(DFU_CONTROL_UUID.getUuid()));
+                            s.setDfuPacket(service.getCharacteristic(DFU_PACKET_UUID.getUuid()));
+                            if (s.getDfu() != null) {
+                                enableDfu(gatt.getDevice());
+                            }
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
                 if (service.getUuid().equals(SERVICE_UUID.getUuid())) {
                     for (BluetoothGattCharacteristic c : service.getCharacteristics()) {
                         final int charaProp = c.getProperties();
@@ -275,9 +781,15 @@ public class Bluetooth {
                             lock.lock();
                             try {
                                 State s = state.get(gatt.getDevice());
-                                // enable local notification callback to trigger
-                                gatt.setCharacteristicNotification(c, true);
                                 if(s != null) {
+                                    s.setRxChar(c); // save rxChar for subscription changes
+                                }
+                                // firmware update owns the GATT queue, subscription is updated afterwards
+                                if(s != null && s.getDfu() == null) {
+                                    // enable local notification callback only if someone needs it
+                                    boolean demanded = s.isDemanded(SystemClock.uptimeMillis());
+                                    gatt.setCharacteristicNotification(c, demanded);
+                                    s.setSubscribed(demanded);
                                     if (!gatt.readCharacteristic(c)) {
                                         close(gatt.getDevice());
                                     }
@@ -301,13 +813,51 @@ public class Bluetooth {
                     }
                 }
             }
+            DfuSession missing = null;
+            lock.lock();
+            try {
+                State s = state.get(gatt.getDevice());
+                if (s != null && s.getDfu() != null && (s.getDfuControl() == null || s.getDfuPacket() == null)) {
+                    missing = s.getDfu();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (missing != null) {
+                Log.e("onServicesDiscovered", "No DFU service on " + gatt.getDevice().getAddress());
+                missing.abort("No DFU service"); // subscription is restored by reconnection handler
+            }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             Log.i("onCharacteristicChanged", characteristic.getUuid().toString());
+            if (characteristic.getUuid().equals(DFU_CONTROL_UUID.getUuid())) {
+                DfuSession dfu = getDfu(gatt.getDevice());
+                if (dfu != null) {
+                    dfu.onControl(characteristic.getValue());
+                }
+                return;
+            }
             if(characteristic.getValue() != null) {
-                callback.onChange(gatt.getDevice(), characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 0));
+                int val = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 0);
+                BroadcastEngine b;
+                lock.lock();
+                try {
+                    State s = state.get(gatt.getDevice());
+                    if (s != null && s.getCommandStart() != 0 && s.getTowrite() != null && s.getTowrite() == val) {
+                        // motor reached the target, command done and grace period starts
+                        s.setCommandStart(0);
+                        s.setLastDemand(SystemClock.uptimeMillis());
+                    }
+                    b = broadcaster;
+                } finally {
+                    lock.unlock();
+                }
+                if (b != null) {
+                    b.confirm(gatt.getDevice().getAddress(), val);
+                }
+                callback.onChange(gatt.getDevice(), val);
             } else {
                 callback.onMissing(gatt.getDevice());
                 lock.lock();
@@ -318,15 +868,70 @@ public class Bluetooth {
                 }
             }
         }
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            if (characteristic.getUuid().equals(DFU_PACKET_UUID.getUuid())) {
+                DfuSession dfu = getDfu(gatt.getDevice());
+                if (dfu != null) {
+                    dfu.onPacketWritten(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (!descriptor.getCharacteristic().getUuid().equals(DFU_CONTROL_UUID.getUuid())) {
+                writePending(gatt.getDevice()); // subscription changed, GATT queue is free
+                return;
+            }
+            DfuSession dfu = null;
+            lock.lock();
+            try {
+                State s = state.get(gatt.getDevice());
+                if (s != null) {
+                    s.setDfuNotifying(status == BluetoothGatt.GATT_SUCCESS);
+                    dfu = s.getDfu();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (dfu != null && status == BluetoothGatt.GATT_SUCCESS) {
+                dfu.start();
+            } else if (dfu != null) {
+                Log.e("onDescriptorWrite", "DFU notifications failed: " + status);
+                dfu.abort("No DFU service");
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i("onMtuChanged", "MTU: " + mtu + " Status: " + status);
+            DfuSession dfu = getDfu(gatt.getDevice());
+            if (dfu != null) {
+                dfu.onMtuChanged(mtu);
+            }
+        }
+
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
                                          int status) {
             Log.i("onCharacteristicRead", characteristic.getUuid().toString());
             if(characteristic.getValue() != null) {
-                // enable futher notifications for this characteristic
-                characteristic.getDescriptors().get(0).setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                if (!gatt.writeDescriptor(characteristic.getDescriptors().get(0))) {
-                    close(gatt.getDevice());
+                lock.lock();
+                try {
+                    State s = state.get(gatt.getDevice());
+                    if (s != null && s.isSubscribed()) {
+                        // enable futher notifications for this characteristic
+                        characteristic.getDescriptors().get(0).setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        if (!gatt.writeDescriptor(characteristic.getDescriptors().get(0))) {
+                            close(gatt.getDevice());
+                        }
+                    } else if (s != null && s.getTxChar() != null) {
+                        write(gatt.getDevice(), s.getTxChar()); // no descriptor write, GATT queue is free
+                    }
+                } finally {
+                    lock.unlock();
                 }
                 // trigger change callback fur currently received value
                 callback.onChange(gatt.getDevice(), characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 0));
@@ -0,0 +1,129 @@
+package lv.ideaportriga.blinds.controller;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Group command sent in manufacturer specific advertising data under the vendor's
+ * company ID, so blinds can act without a GATT connection.
+ *
+ * Command layout (16 bytes): type, seq (uint32), group (uint16), val, 8 bytes of HMAC-SHA256.
+ * Ack layout advertised back by the blinds (14 bytes): type, seq (uint32), val, 8 bytes of
+ * HMAC-SHA256 over type, seq, val and the blind's address, so acks can not be replayed for
+ * another blind or position.
+ */
+public class BroadcastCommand {
+    public static final int GROUP_ALL = 0xFFFF;
+    static final byte TYPE_COMMAND = 1;
+    static final byte TYPE_ACK = 2;
+    static final int COMMAND_LENGTH = 16;
+    static final int ACK_LENGTH = 14;
+    private static final int SIGNED_LENGTH = 8;
+    private static final int ACK_SIGNED_LENGTH = 6;
+    private static final int MAC_LENGTH = 8;
+
+    private final long seq;
+    private final int group;
+    private final int val;
+
+    public BroadcastCommand(long seq, int group, int val) {
+        this.seq = seq & 0xFFFFFFFFL;
+        this.group = group & 0xFFFF;
+        this.val = val & 0xFF;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    public int getVal() {
+        return val;
+    }
+
+    public byte[] encode(byte[] key) {
+        byte[] data = new byte[COMMAND_LENGTH];
+        data[0] = TYPE_COMMAND;
+        putUint32(data, 1, seq);
+        data[5] = (byte) (group >> 8);
+        data[6] = (byte) group;
+        data[7] = (byte) val;
+        System.arraycopy(sign(key, data, SIGNED_LENGTH, null), 0, data, SIGNED_LENGTH, MAC_LENGTH);
+        return data;
+    }
+
+    /**
+     * @return decoded command or null if data is not a command or signature does not match
+     */
+    public static BroadcastCommand decode(byte[] key, byte[] data) {
+        if (data == null || data.length != COMMAND_LENGTH || data[0] != TYPE_COMMAND
+                || !verify(key, data, SIGNED_LENGTH, null)) {
+            return null;
+        }
+        return new BroadcastCommand(getUint32(data, 1), ((data[5] & 0xFF) << 8) | (data[6] & 0xFF), data[7]);
+    }
+
+    public static byte[] encodeAck(byte[] key, String address, long seq, int val) {
+        byte[] data = new byte[ACK_LENGTH];
+        data[0] = TYPE_ACK;
+        putUint32(data, 1, seq);
+        data[5] = (byte) val;
+        System.arraycopy(sign(key, data, ACK_SIGNED_LENGTH, address), 0, data, ACK_SIGNED_LENGTH, MAC_LENGTH);
+        return data;
+    }
+
+    /**
+     * @return acknowledged command (group is {@link #GROUP_ALL}) or null if data is not an ack
+     * signed by the blind with given address
+     */
+    public static BroadcastCommand decodeAck(byte[] key, String address, byte[] data) {
+        if (data == null || data.length != ACK_LENGTH || data[0] != TYPE_ACK
+                || !verify(key, data, ACK_SIGNED_LENGTH, address)) {
+            return null;
+        }
+        return new BroadcastCommand(getUint32(data, 1), GROUP_ALL, data[5]);
+    }
+
+    private static boolean verify(byte[] key, byte[] data, int signedLength, String address) {
+        byte[] mac = sign(key, data, signedLength, address);
+        int diff = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            diff |= mac[i] ^ data[signedLength + i];
+        }
+        return diff == 0;
+    }
+
+    private static byte[] sign(byte[] key, byte[] data, int signedLength, String address) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(data, 0, signedLength);
+            if (address != null) {
+                mac.update(address.getBytes("US-ASCII"));
+            }
+            return mac.doFinal();
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void putUint32(byte[] data, int offset, long v) {
+        data[offset] = (byte) (v >> 24);
+        data[offset + 1] = (byte) (v >> 16);
+        data[offset + 2] = (byte) (v >> 8);
+        data[offset + 3] = (byte) v;
+    }
+
+    private static long getUint32(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,195 @@
+package lv.ideaportriga.blinds.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends one command to a group of blinds through advertising instead of a GATT
+ * connection per blind. Blinds confirm with ack advertisements (or a regular
+ * notification when connected), everything not confirmed when the command is
+ * finished gets a GATT write through {@link Fallback}.
+ *
+ * Android specifics live behind {@link Advertiser} and {@link Scanner} so the
+ * engine can be driven by fakes on the JVM.
+ */
+public class BroadcastEngine {
+    public interface Advertiser {
+        boolean start(byte[] data);
+        void stop();
+    }
+
+    public interface Scanner {
+        boolean start(Listener listener);
+        void stop();
+    }
+
+    public interface Listener {
+        void onAdvertisement(String address, byte[] data);
+    }
+
+    public interface Fallback {
+        void write(String address, int val);
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[] key;
+    private final Advertiser advertiser;
+    private final Scanner scanner;
+    private final Fallback fallback;
+    private long seq;
+    private BroadcastCommand pending = null; // null means nothing in flight
+    private final Set<String> unconfirmed = new HashSet<>();
+
+    private final Listener listener = new Listener() {
+        @Override
+        public void onAdvertisement(String address, byte[] data) {
+            lock.lock();
+            try {
+                BroadcastCommand ack = pending != null ? BroadcastCommand.decodeAck(key, address, data) : null;
+                if (ack != null && ack.getSeq() == pending.getSeq() && ack.getVal() == pending.getVal()) {
+                    confirmed(address);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+    /**
+     * @param seq last used sequence number, blinds ignore commands not newer than the last one they executed
+     */
+    public BroadcastEngine(byte[] key, long seq, Advertiser advertiser, Scanner scanner, Fallback fallback) {
+        this.key = key;
+        this.seq = seq;
+        this.advertiser = advertiser;
+        this.scanner = scanner;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Starts advertising command. A previous command still in flight is superseded, its
+     * unconfirmed blinds are not written through fallback.
+     *
+     * @return sequence number to pass to {@link #finish(long)} or -1 if advertising is not possible
+     * and all addresses were written through fallback
+     */
+    public long send(int group, Collection<String> addresses, int val) {
+        List<String> failed = new ArrayList<>();
+        long result = -1;
+        lock.lock();
+        try {
+            if (pending != null) {
+                stop();
+                unconfirmed.clear();
+                pending = null;
+            }
+            seq = (seq + 1) & 0xFFFFFFFFL;
+            BroadcastCommand cmd = new BroadcastCommand(seq, group, val);
+            pending = cmd;
+            unconfirmed.addAll(addresses);
+            scanner.start(listener); // no scan means confirmations only come from notifications
+            if (pending == cmd && !advertiser.start(cmd.encode(key))) {
+                scanner.stop();
+                failed.addAll(unconfirmed);
+                unconfirmed.clear();
+                pending = null;
+            } else {
+                result = cmd.getSeq();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (String address : failed) {
+            fallback.write(address, val);
+        }
+        return result;
+    }
+
+    /**
+     * Advertising failed after {@link Advertiser#start} accepted it, unconfirmed blinds
+     * are written through fallback right away instead of after the confirmation window.
+     *
+     * @return addresses written through fallback
+     */
+    public Set<String> onAdvertiseFailed() {
+        long s;
+        lock.lock();
+        try {
+            if (pending == null) {
+                return new HashSet<>();
+            }
+            s = pending.getSeq();
+        } finally {
+            lock.unlock();
+        }
+        return finish(s);
+    }
+
+    /**
+     * Piggybacked confirmation: a connected blind reported it is at the commanded position.
+     */
+    public void confirm(String address, int val) {
+        lock.lock();
+        try {
+            if (pending != null && pending.getVal() == val) {
+                confirmed(address);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finishes command with given sequence number, does nothing if another command was sent since.
+     *
+     * @return addresses that did not confirm and were written through fallback
+     */
+    public Set<String> finish(long seq) {
+        Set<String> failed;
+        int val;
+        lock.lock();
+        try {
+            if (pending == null || pending.getSeq() != seq) {
+                return new HashSet<>();
+            }
+            stop();
+            failed = new HashSet<>(unconfirmed);
+            val = pending.getVal();
+            unconfirmed.clear();
+            pending = null;
+        } finally {
+            lock.unlock();
+        }
+        // outside of the lock, fallback opens GATT connections
+        for (String address : failed) {
+            fallback.write(address, val);
+        }
+        return failed;
+    }
+
+    public boolean isPending() {
+        lock.lock();
+        try {
+            return pending != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void confirmed(String address) {
+        if (unconfirmed.remove(address) && unconfirmed.isEmpty()) {
+            // everyone confirmed, free the radio early
+            stop();
+            pending = null;
+        }
+    }
+
+    private void stop() {
+        advertiser.stop();
+        scanner.stop();
+    }
+}
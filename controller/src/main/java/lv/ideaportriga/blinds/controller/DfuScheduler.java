@@ -0,0 +1,91 @@
+package lv.ideaportriga.blinds.controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs firmware updates in parallel, at most maxParallel at a time so updates
+ * share the radio with normal blind connections.
+ */
+public class DfuScheduler {
+    public interface Starter {
+        void start(DfuSession session);
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxParallel;
+    private final Starter starter;
+    private final Deque<DfuSession> queue = new ArrayDeque<>();
+    private final Set<DfuSession> running = new HashSet<>();
+
+    public DfuScheduler(int maxParallel, Starter starter) {
+        this.maxParallel = maxParallel;
+        this.starter = starter;
+    }
+
+    public void add(DfuSession session) {
+        lock.lock();
+        try {
+            queue.add(session);
+        } finally {
+            lock.unlock();
+        }
+        startNext();
+    }
+
+    /**
+     * Frees slot of completed or failed session.
+     */
+    public void done(DfuSession session) {
+        lock.lock();
+        try {
+            if (!running.remove(session)) {
+                queue.remove(session);
+            }
+        } finally {
+            lock.unlock();
+        }
+        startNext();
+    }
+
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startNext() {
+        List<DfuSession> toStart = new ArrayList<>();
+        lock.lock();
+        try {
+            while (running.size() < maxParallel && !queue.isEmpty()) {
+                DfuSession s = queue.poll();
+                running.add(s);
+                toStart.add(s);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // outside of the lock, starting may complete a session right away
+        for (DfuSession s : toStart) {
+            starter.start(s);
+        }
+    }
+}
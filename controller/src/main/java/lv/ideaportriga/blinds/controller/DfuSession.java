@@ -0,0 +1,384 @@
+package lv.ideaportriga.blinds.controller;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Firmware update of one blind. Image is streamed in MTU sized packets written
+ * without response, the blind reports received offset and CRC every {@link #PRN}
+ * packets and at most {@link #WINDOW} packets are sent ahead of the last report.
+ * After a disconnect {@link #start()} asks the blind what it already has and resumes
+ * from there if the CRC matches.
+ *
+ * Control point requests are an opcode followed by little endian arguments, responses
+ * are {@link #OP_RESPONSE}, request opcode, status and, for {@link #OP_SELECT} and
+ * {@link #OP_CRC}, offset (uint32) and CRC32 (uint32). Packet receipt notifications
+ * are unsolicited {@link #OP_CRC} responses, the blind sends one every {@link #PRN} packets
+ * counted from {@link #OP_SET_PRN}, so the session tells them apart from the answer to its
+ * own {@link #OP_CRC} request by counting.
+ *
+ * A lost response, write callback or receipt would stall the session, so {@link #checkStalled()}
+ * re-synchronizes with the blind after {@link #STALL_TICKS} calls without progress.
+ */
+public class DfuSession {
+    public interface Transport {
+        /**
+         * @return false if MTU can not be negotiated, default MTU is used then
+         */
+        boolean requestMtu(int mtu);
+        boolean writeControl(byte[] data);
+        boolean writePacket(byte[] data);
+    }
+
+    public interface Listener {
+        void onProgress(DfuSession session, int sent, int total);
+        void onComplete(DfuSession session);
+        void onError(DfuSession session, String reason);
+    }
+
+    static final byte OP_CREATE = 0x01;
+    static final byte OP_SET_PRN = 0x02;
+    static final byte OP_CRC = 0x03;
+    static final byte OP_EXECUTE = 0x04;
+    static final byte OP_SELECT = 0x06;
+    static final byte OP_RESPONSE = 0x60;
+    static final byte STATUS_SUCCESS = 0x01;
+    public static final int REQUESTED_MTU = 247;
+    static final int DEFAULT_MTU = 23;
+    static final int PRN = 10; // packets between receipt notifications
+    static final int WINDOW = 2 * PRN; // packets allowed ahead of last receipt
+    static final int STALL_TICKS = 3; // checkStalled() calls without progress before re-synchronizing
+    static final int MAX_RESYNCS = 3; // re-synchronizations without new data acked before giving up
+
+    private enum Step { IDLE, MTU, PRN, SELECT, CREATE, STREAMING, CRC, EXECUTE, DONE, FAILED }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final String address;
+    private final byte[] image;
+    private final Transport transport;
+    private final Listener listener;
+    private Step step = Step.IDLE;
+    private int packetSize = DEFAULT_MTU - 3;
+    private int sent = 0; // bytes written to the blind
+    private int acked = 0; // bytes confirmed by the blind with matching CRC
+    private int writing = 0; // length of packet waiting for onPacketWritten, 0 means none
+    private int packets = 0; // packets written since OP_SET_PRN
+    private int receipts = 0; // receipt notifications received since OP_SET_PRN
+    private byte[] pendingControl = null; // control request the transport was too busy to accept
+    private int idleTicks = 0; // checkStalled() calls since last progress
+    private int resyncs = 0;
+    private final CRC32 crc = new CRC32(); // CRC of image up to acked
+
+    public DfuSession(String address, byte[] image, Transport transport, Listener listener) {
+        this.address = address;
+        this.image = image;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public boolean isFinished() {
+        lock.lock();
+        try {
+            return step == Step.DONE || step == Step.FAILED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts or resumes update once the link is up. Afterwards it retries a control
+     * or packet write the transport was too busy to accept.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (pendingControl != null) {
+                byte[] cmd = pendingControl;
+                pendingControl = null;
+                control(cmd);
+            } else if (step == Step.STREAMING) {
+                pump();
+            } else if (step == Step.IDLE) {
+                step = Step.MTU;
+                if (!transport.requestMtu(REQUESTED_MTU)) {
+                    onMtuChanged(DEFAULT_MTU);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called periodically while the link is up. If the current step made no progress for
+     * {@link #STALL_TICKS} calls the session asks the blind what it has and resumes from there,
+     * after {@link #MAX_RESYNCS} attempts without new data acked the update fails.
+     */
+    public void checkStalled() {
+        lock.lock();
+        try {
+            if (step == Step.IDLE || isFinished()) {
+                idleTicks = 0;
+                return;
+            }
+            if (++idleTicks < STALL_TICKS) {
+                return;
+            }
+            idleTicks = 0;
+            if (++resyncs > MAX_RESYNCS) {
+                fail("Timed out");
+                return;
+            }
+            // late callbacks of the stalled step are ignored, writing is cleared and step moves on
+            writing = 0;
+            pendingControl = null;
+            packets = 0;
+            receipts = 0;
+            step = Step.PRN;
+            control(new byte[]{OP_SET_PRN, (byte) PRN, (byte) (PRN >> 8)});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onMtuChanged(int mtu) {
+        lock.lock();
+        try {
+            if (step == Step.MTU) {
+                idleTicks = 0;
+                packetSize = Math.max(mtu, DEFAULT_MTU) - 3; // ATT header
+                packets = 0;
+                receipts = 0;
+                step = Step.PRN;
+                control(new byte[]{OP_SET_PRN, (byte) PRN, (byte) (PRN >> 8)});
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onControl(byte[] data) {
+        lock.lock();
+        try {
+            if (step == Step.IDLE || isFinished()) {
+                return;
+            }
+            if (data == null || data.length < 3 || data[0] != OP_RESPONSE) {
+                fail("Malformed response");
+                return;
+            }
+            if (data[2] != STATUS_SUCCESS) {
+                fail("Operation " + data[1] + " failed with status " + data[2]);
+                return;
+            }
+            idleTicks = 0;
+            switch (data[1]) {
+                case OP_SET_PRN:
+                    if (step == Step.PRN) {
+                        step = Step.SELECT;
+                        control(new byte[]{OP_SELECT});
+                    }
+                    break;
+                case OP_SELECT:
+                    if (step == Step.SELECT && data.length >= 11) {
+                        select(getUint32(data, 3), getUint32(data, 7));
+                    }
+                    break;
+                case OP_CREATE:
+                    if (step == Step.CREATE) {
+                        sent = 0;
+                        acked = 0;
+                        crc.reset();
+                        step = Step.STREAMING;
+                        pump();
+                    }
+                    break;
+                case OP_CRC:
+                    if ((step == Step.STREAMING || step == Step.CRC) && data.length >= 11) {
+                        // receipts still on their way can arrive after OP_CRC was requested
+                        boolean isReceipt = receipts < packets / PRN;
+                        if (isReceipt) {
+                            receipts++;
+                        }
+                        receipt(getUint32(data, 3), getUint32(data, 7), !isReceipt && step == Step.CRC);
+                    }
+                    break;
+                case OP_EXECUTE:
+                    if (step == Step.EXECUTE) {
+                        step = Step.DONE;
+                        listener.onComplete(this);
+                    }
+                    break;
+                default:
+                    fail("Unexpected response to " + data[1]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onPacketWritten(boolean success) {
+        lock.lock();
+        try {
+            if (step != Step.STREAMING || writing == 0) {
+                return;
+            }
+            if (!success) {
+                fail("Packet write failed at " + sent);
+                return;
+            }
+            idleTicks = 0;
+            sent += writing;
+            writing = 0;
+            packets++;
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Link lost, progress is kept and re-synchronized with the blind on next {@link #start()}.
+     */
+    public void onDisconnected() {
+        lock.lock();
+        try {
+            if (!isFinished()) {
+                step = Step.IDLE;
+                writing = 0;
+                pendingControl = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up the update, listener gets {@link Listener#onError}.
+     */
+    public void abort(String reason) {
+        lock.lock();
+        try {
+            if (!isFinished()) {
+                fail(reason);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void select(long offset, long remoteCrc) {
+        if (offset > 0 && offset <= image.length) {
+            CRC32 c = new CRC32();
+            c.update(image, 0, (int) offset);
+            if (c.getValue() == remoteCrc) { // resume
+                if (offset > acked) {
+                    resyncs = 0;
+                }
+                sent = (int) offset;
+                acked = (int) offset;
+                crc.reset();
+                crc.update(image, 0, acked);
+                step = Step.STREAMING;
+                listener.onProgress(this, acked, image.length);
+                pump();
+                return;
+            }
+        }
+        step = Step.CREATE;
+        byte[] cmd = new byte[5];
+        cmd[0] = OP_CREATE;
+        putUint32(cmd, 1, image.length);
+        control(cmd);
+    }
+
+    /**
+     * @param last answer to OP_CRC request after all packets were sent
+     */
+    private void receipt(long offset, long remoteCrc, boolean last) {
+        if (offset < acked || offset > sent + writing) {
+            fail("Unexpected offset " + offset);
+            return;
+        }
+        crc.update(image, acked, (int) offset - acked);
+        if (crc.getValue() != remoteCrc) {
+            fail("CRC mismatch at " + offset);
+            return;
+        }
+        if (offset > acked) {
+            resyncs = 0;
+        }
+        acked = (int) offset;
+        listener.onProgress(this, acked, image.length);
+        if (last) {
+            if (acked == image.length) {
+                execute();
+            } else {
+                fail("Image incomplete, blind has " + acked + " of " + image.length);
+            }
+        } else if (step == Step.STREAMING) {
+            pump();
+        }
+    }
+
+    private void pump() {
+        if (step != Step.STREAMING || writing != 0) {
+            return;
+        }
+        if (sent == image.length) {
+            if (acked == image.length) {
+                execute();
+            } else {
+                step = Step.CRC;
+                control(new byte[]{OP_CRC});
+            }
+            return;
+        }
+        if (sent - acked >= WINDOW * packetSize) {
+            return; // wait for receipt notification
+        }
+        byte[] packet = Arrays.copyOfRange(image, sent, Math.min(sent + packetSize, image.length));
+        writing = packet.length;
+        if (!transport.writePacket(packet)) {
+            writing = 0; // busy, retried on next start()
+        }
+    }
+
+    private void execute() {
+        step = Step.EXECUTE;
+        byte[] cmd = new byte[5];
+        cmd[0] = OP_EXECUTE;
+        putUint32(cmd, 1, crc.getValue());
+        control(cmd);
+    }
+
+    private void control(byte[] cmd) {
+        if (!transport.writeControl(cmd)) {
+            pendingControl = cmd; // busy, retried on next start()
+        }
+    }
+
+    private void fail(String reason) {
+        step = Step.FAILED;
+        writing = 0;
+        pendingControl = null;
+        listener.onError(this, reason);
+    }
+
+    static void putUint32(byte[] data, int offset, long v) {
+        data[offset] = (byte) v;
+        data[offset + 1] = (byte) (v >> 8);
+        data[offset + 2] = (byte) (v >> 16);
+        data[offset + 3] = (byte) (v >> 24);
+    }
+
+    static long getUint32(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+                | ((data[offset + 2] & 0xFF) << 16) | ((long) (data[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,77 @@
+package lv.ideaportriga.blinds.controller;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.util.Log;
+
+/**
+ * Non-connectable advertising of broadcast commands through {@link BluetoothLeAdvertiser}.
+ */
+@TargetApi(21)
+public class LeAdvertiser implements BroadcastEngine.Advertiser {
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final int manufacturerId;
+    private BluetoothLeAdvertiser advertiser = null; // null means not advertising
+    private Runnable onFailure = null;
+
+    private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartFailure(int errorCode) {
+            Log.e("LeAdvertiser", "Advertising failed: " + errorCode);
+            Runnable r = onFailure;
+            if (r != null) {
+                r.run();
+            }
+        }
+    };
+
+    /**
+     * @param manufacturerId company ID assigned to the blinds vendor by Bluetooth SIG
+     */
+    public LeAdvertiser(BluetoothAdapter adapter, int manufacturerId) {
+        mBluetoothAdapter = adapter;
+        this.manufacturerId = manufacturerId;
+    }
+
+    /**
+     * @param r runs when advertising fails after {@link #start} returned true
+     */
+    public void setOnFailure(Runnable r) {
+        onFailure = r;
+    }
+
+    @Override
+    public boolean start(byte[] data) {
+        stop();
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isMultipleAdvertisementSupported()) {
+            return false;
+        }
+        BluetoothLeAdvertiser a = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        if (a == null) {
+            return false;
+        }
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .setConnectable(false)
+                .build();
+        AdvertiseData advertiseData = new AdvertiseData.Builder()
+                .addManufacturerData(manufacturerId, data)
+                .build();
+        a.startAdvertising(settings, advertiseData, advertiseCallback);
+        advertiser = a;
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        if (advertiser != null) {
+            advertiser.stopAdvertising(advertiseCallback);
+            advertiser = null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package lv.ideaportriga.blinds.controller;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.util.Log;
+
+import java.util.Collections;
+
+/**
+ * Passive scan for broadcast command acks advertised by the blinds.
+ */
+@TargetApi(21)
+public class LeScanner implements BroadcastEngine.Scanner {
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final int manufacturerId;
+    private BluetoothLeScanner scanner = null; // null means not scanning
+    private BroadcastEngine.Listener listener;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            BroadcastEngine.Listener l = listener;
+            if (record != null && l != null) {
+                byte[] data = record.getManufacturerSpecificData(manufacturerId);
+                if (data != null) {
+                    l.onAdvertisement(result.getDevice().getAddress(), data);
+                }
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e("LeScanner", "Scan failed: " + errorCode);
+        }
+    };
+
+    /**
+     * @param manufacturerId company ID assigned to the blinds vendor by Bluetooth SIG
+     */
+    public LeScanner(BluetoothAdapter adapter, int manufacturerId) {
+        mBluetoothAdapter = adapter;
+        this.manufacturerId = manufacturerId;
+    }
+
+    @Override
+    public boolean start(BroadcastEngine.Listener l) {
+        stop();
+        if (mBluetoothAdapter == null) {
+            return false;
+        }
+        BluetoothLeScanner s = mBluetoothAdapter.getBluetoothLeScanner();
+        if (s == null) {
+            return false;
+        }
+        ScanFilter filter = new ScanFilter.Builder()
+                .setManufacturerData(manufacturerId, new byte[]{BroadcastCommand.TYPE_ACK},
+                        new byte[]{(byte) 0xFF})
+                .build();
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build();
+        listener = l;
+        s.startScan(Collections.singletonList(filter), settings, scanCallback);
+        scanner = s;
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        if (scanner != null) {
+            scanner.stopScan(scanCallback);
+            scanner = null;
+        }
+        listener = null;
+    }
+}
@@ -1,11 +1,13 @@
 package lv.ideaportriga.blinds.controller;
 
+import android.Manifest;
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.os.Build;
@@ -15,12 +17,18 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.support.v7.app.ActionBar;
+import android.util.Log;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.view.MenuItem;
 import android.widget.Toast;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -37,8 +45,16 @@ import java.util.Map;
 @TargetApi(21)
 public class SettingsActivity extends AppCompatPreferenceActivity {
     private static final int REQUEST_ENABLE_BT = 1;
+    private static final int REQUEST_LOCATION = 2;
+    private static final int REQUEST_FIRMWARE = 3;
+    private static final String KEY_MOVE_ALL = "move_all";
+    private static final String KEY_UPDATE_FIRMWARE = "update_firmware";
+    // provisioned with the blinds, broadcast stays off without them
+    private static final String PREF_MANUFACTURER_ID = "broadcast_manufacturer_id";
+    private static final String PREF_BROADCAST_KEY = "broadcast_key";
     private static Bluetooth mBluetooth;
     private static Map<String, BluetoothDevice> devicesByAddress = new HashMap<>();
+    private final List<BluetoothDevice> watching = new ArrayList<>();
 
     private final BluetoothCallback mBlinds1Callback = new BluetoothCallback() {
         @Override
@@ -68,6 +84,35 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         }
     };
 
+    private final DfuSession.Listener mUpdateListener = new DfuSession.Listener() {
+        @Override
+        public void onProgress(DfuSession session, int sent, int total) {
+            setSummary(session.getAddress(), "Updating " + (sent * 100L / total) + "%%");
+        }
+
+        @Override
+        public void onComplete(DfuSession session) {
+            setSummary(session.getAddress(), "Updated");
+        }
+
+        @Override
+        public void onError(DfuSession session, String reason) {
+            setSummary(session.getAddress(), "Update failed: " + reason);
+        }
+
+        private void setSummary(final String address, final String summary) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Preference pref = findPreference(address);
+                    if(pref != null) {
+                        pref.setSummary(summary);
+                    }
+                }
+            });
+        }
+    };
+
     protected void setupBluetooth() {
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, "BLE Not Supported",
@@ -75,6 +120,47 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             finish();
         }
         mBluetooth = new Bluetooth(this, (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE), mBlinds1Callback);
+        setupBroadcast();
+    }
+
+    protected void setupBroadcast() {
+        if (Build.VERSION.SDK_INT >= 23
+                && checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            // acks are only seen by scans with location permission
+            requestPermissions(new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, REQUEST_LOCATION);
+            return;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String id = prefs.getString(PREF_MANUFACTURER_ID, null);
+        String key = prefs.getString(PREF_BROADCAST_KEY, null);
+        if (id == null || key == null) {
+            return;
+        }
+        try {
+            mBluetooth.enableBroadcast(Integer.decode(id), parseHex(key));
+        } catch (IllegalArgumentException e) {
+            Log.e("setupBroadcast", "Invalid broadcast provisioning", e);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_LOCATION && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            setupBroadcast();
+        }
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() == 0 || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd hex length");
+        }
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
     }
 
     @Override
@@ -90,6 +176,35 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         // update screen with new devices?
         PreferenceScreen screen = getPreferenceScreen() != null ? getPreferenceScreen() :
                 getPreferenceManager().createPreferenceScreen(this);
+        if (findPreference(KEY_MOVE_ALL) == null) {
+            ListPreference moveAllPreference = new ListPreference(this);
+            moveAllPreference.setEntries(new CharSequence[]{"100% Open", "75% Open", "50% Open", "25% Open", "Close"});
+            moveAllPreference.setEntryValues(new CharSequence[]{"100", "75", "50", "25", "0"});
+            moveAllPreference.setTitle("All blinds");
+            moveAllPreference.setSummary("");
+            moveAllPreference.setDialogTitle("Change all");
+            moveAllPreference.setPersistent(false);
+            moveAllPreference.setKey(KEY_MOVE_ALL);
+            moveAllPreference.setOnPreferenceChangeListener(sMoveAllListener);
+            screen.addPreference(moveAllPreference);
+        }
+        if (findPreference(KEY_UPDATE_FIRMWARE) == null) {
+            Preference updatePreference = new Preference(this);
+            updatePreference.setTitle("Update firmware");
+            updatePreference.setSummary("Choose image for all blinds");
+            updatePreference.setKey(KEY_UPDATE_FIRMWARE);
+            updatePreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                    intent.setType("*/*");
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    startActivityForResult(intent, REQUEST_FIRMWARE);
+                    return true;
+                }
+            });
+            screen.addPreference(updatePreference);
+        }
         for(BluetoothDevice d : mBluetooth.getDevices()) {
             if(findPreference(d.getAddress()) == null) { // new preference
                 ListPreference blindsXPreference = new ListPreference(this);
@@ -107,12 +222,49 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
                 screen.addPreference(blindsXPreference);
             }
             devicesByAddress.put(d.getAddress(), d);
+            mBluetooth.watch(d); // visible on screen, keep notifications on
+            watching.add(d);
         }
         setPreferenceScreen(screen);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_FIRMWARE || resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        InputStream in = null;
+        try {
+            in = getContentResolver().openInputStream(data.getData());
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                image.write(buf, 0, n);
+            }
+        } catch (IOException e) {
+            Log.e("onActivityResult", "Can not read firmware image", e);
+            Toast.makeText(this, "Can not read firmware image", Toast.LENGTH_SHORT).show();
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        mBluetooth.update(mBluetooth.getDevices(), image.toByteArray(), mUpdateListener);
+    }
+
     @Override
     protected void onPause() {
+        for(BluetoothDevice d : watching) {
+            mBluetooth.unwatch(d);
+        }
+        watching.clear();
         mBluetooth.passivate();
         super.onPause();
     }
@@ -139,6 +291,19 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         }
     };
 
+    /**
+     * Moves every known blind with one broadcast command.
+     */
+    private static Preference.OnPreferenceChangeListener sMoveAllListener = new Preference.OnPreferenceChangeListener() {
+        @Override
+        public boolean onPreferenceChange(Preference preference, Object value) {
+            if (value != null) {
+                mBluetooth.broadcast(Integer.parseInt(value.toString()));
+            }
+            return true;
+        }
+    };
+
     /**
      * Helper method to determine if the device has an extra-large screen. For
      * example, 10" tablets are extra-large.
@@ -0,0 +1,204 @@
+package lv.ideaportriga.blinds.controller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Broadcast commands against fake advertiser/scanner, runs on the development machine (host).
+ */
+public class BroadcastEngineTest {
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+    /**
+     * Blind listening to advertisements, acks commands it executed if it supports broadcast.
+     */
+    private static class FakeBlind {
+        private final boolean supportsBroadcast;
+        private long lastSeq = 0;
+        private int val = -1;
+
+        FakeBlind(boolean supportsBroadcast) {
+            this.supportsBroadcast = supportsBroadcast;
+        }
+    }
+
+    /**
+     * Radio shared by the controller's advertiser/scanner and the fake blinds.
+     */
+    private static class FakeAir implements BroadcastEngine.Advertiser, BroadcastEngine.Scanner {
+        private final Map<String, FakeBlind> blinds = new HashMap<>();
+        private BroadcastEngine.Listener listener = null;
+        private byte[] advertising = null;
+        private boolean advertiseSupported = true;
+
+        @Override
+        public boolean start(byte[] data) {
+            if (!advertiseSupported) {
+                return false;
+            }
+            advertising = data;
+            for (Map.Entry<String, FakeBlind> e : blinds.entrySet()) {
+                FakeBlind b = e.getValue();
+                BroadcastCommand cmd = BroadcastCommand.decode(KEY, data);
+                if (b.supportsBroadcast && cmd != null && cmd.getSeq() > b.lastSeq) {
+                    b.lastSeq = cmd.getSeq();
+                    b.val = cmd.getVal();
+                    if (listener != null) {
+                        listener.onAdvertisement(e.getKey(),
+                                BroadcastCommand.encodeAck(KEY, e.getKey(), cmd.getSeq(), cmd.getVal()));
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean start(BroadcastEngine.Listener l) {
+            listener = l;
+            return true;
+        }
+
+        @Override
+        public void stop() {
+            advertising = null;
+            listener = null;
+        }
+    }
+
+    private FakeAir air;
+    private Map<String, Integer> gattWrites;
+    private BroadcastEngine engine;
+
+    @Before
+    public void setUp() {
+        air = new FakeAir();
+        gattWrites = new HashMap<>();
+        engine = new BroadcastEngine(KEY, 100, air, air, new BroadcastEngine.Fallback() {
+            @Override
+            public void write(String address, int val) {
+                gattWrites.put(address, val);
+            }
+        });
+    }
+
+    @Test
+    public void command_roundTrip() throws Exception {
+        byte[] data = new BroadcastCommand(0xFFFFFFF0L, 7, 75).encode(KEY);
+        assertEquals(BroadcastCommand.COMMAND_LENGTH, data.length);
+        BroadcastCommand cmd = BroadcastCommand.decode(KEY, data);
+        assertNotNull(cmd);
+        assertEquals(0xFFFFFFF0L, cmd.getSeq());
+        assertEquals(7, cmd.getGroup());
+        assertEquals(75, cmd.getVal());
+    }
+
+    @Test
+    public void command_rejectsTamperedOrForeign() throws Exception {
+        byte[] data = new BroadcastCommand(1, BroadcastCommand.GROUP_ALL, 0).encode(KEY);
+        assertNull(BroadcastCommand.decode("fedcba9876543210".getBytes(), data));
+        data[7] = 100;
+        assertNull(BroadcastCommand.decode(KEY, data));
+        assertNull(BroadcastCommand.decode(KEY, BroadcastCommand.encodeAck(KEY, "A", 1, 0)));
+    }
+
+    @Test
+    public void send_confirmedBlindsAreNotWritten() throws Exception {
+        air.blinds.put("A", new FakeBlind(true));
+        air.blinds.put("B", new FakeBlind(false));
+        air.blinds.put("C", new FakeBlind(true));
+        long seq = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A", "B", "C"), 0);
+        assertEquals(101, seq);
+        assertEquals(0, air.blinds.get("A").val);
+        assertTrue(engine.isPending());
+        assertEquals(new HashSet<>(Arrays.asList("B")), engine.finish(seq));
+        assertEquals(1, gattWrites.size());
+        assertEquals(Integer.valueOf(0), gattWrites.get("B"));
+        assertNull(air.advertising);
+    }
+
+    @Test
+    public void send_allConfirmedStopsEarly() throws Exception {
+        air.blinds.put("A", new FakeBlind(true));
+        long seq = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A"), 50);
+        assertFalse(engine.isPending());
+        assertNull(air.advertising);
+        assertTrue(engine.finish(seq).isEmpty());
+        assertTrue(gattWrites.isEmpty());
+    }
+
+    @Test
+    public void confirm_notificationCountsAsAck() throws Exception {
+        long seq = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A", "B"), 25);
+        engine.confirm("A", 50); // other position, not a confirmation
+        engine.confirm("B", 25);
+        assertEquals(new HashSet<>(Arrays.asList("A")), engine.finish(seq));
+    }
+
+    @Test
+    public void send_withoutAdvertisingFallsBack() throws Exception {
+        air.advertiseSupported = false;
+        assertEquals(-1, engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A", "B"), 100));
+        assertEquals(2, gattWrites.size());
+        assertFalse(engine.isPending());
+    }
+
+    @Test
+    public void advertiseFailed_fallsBackRightAway() throws Exception {
+        air.blinds.put("A", new FakeBlind(true));
+        long seq = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A", "B"), 75);
+        assertEquals(new HashSet<>(Arrays.asList("B")), engine.onAdvertiseFailed());
+        assertEquals(Integer.valueOf(75), gattWrites.get("B"));
+        assertFalse(engine.isPending());
+        assertNull(air.advertising);
+        assertTrue(engine.finish(seq).isEmpty()); // window expiring later writes nothing twice
+        assertEquals(1, gattWrites.size());
+    }
+
+    @Test
+    public void finish_ignoresStaleSequence() throws Exception {
+        long first = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A"), 0);
+        long second = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A"), 100);
+        assertTrue(gattWrites.isEmpty()); // superseded value is not written
+        assertNotEquals(first, second);
+        assertTrue(engine.finish(first).isEmpty());
+        assertTrue(engine.isPending());
+        assertEquals(new HashSet<>(Arrays.asList("A")), engine.finish(second));
+        assertEquals(Integer.valueOf(100), gattWrites.get("A"));
+    }
+
+    @Test
+    public void ack_roundTrip() throws Exception {
+        BroadcastCommand ack = BroadcastCommand.decodeAck(KEY, "A", BroadcastCommand.encodeAck(KEY, "A", 0xFFFFFFF0L, 75));
+        assertNotNull(ack);
+        assertEquals(0xFFFFFFF0L, ack.getSeq());
+        assertEquals(75, ack.getVal());
+    }
+
+    @Test
+    public void ack_rejectsForgedOrReplayed() throws Exception {
+        long seq = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A", "B", "C", "D"), 25);
+        // unsigned, foreign key, replayed from another blind, other position, older command
+        byte[] unsigned = BroadcastCommand.encodeAck(KEY, "A", seq, 25);
+        Arrays.fill(unsigned, 6, BroadcastCommand.ACK_LENGTH, (byte) 0);
+        air.listener.onAdvertisement("A", unsigned);
+        air.listener.onAdvertisement("B", BroadcastCommand.encodeAck("fedcba9876543210".getBytes(), "B", seq, 25));
+        air.listener.onAdvertisement("C", BroadcastCommand.encodeAck(KEY, "D", seq, 25));
+        air.listener.onAdvertisement("D", BroadcastCommand.encodeAck(KEY, "D", seq, 50));
+        air.listener.onAdvertisement("D", BroadcastCommand.encodeAck(KEY, "D", seq - 1, 25));
+        assertEquals(new HashSet<>(Arrays.asList("A", "B", "C", "D")), engine.finish(seq));
+    }
+
+    @Test
+    public void ack_confirmsOnlySigningBlind() throws Exception {
+        long seq = engine.send(BroadcastCommand.GROUP_ALL, Arrays.asList("A", "B"), 25);
+        air.listener.onAdvertisement("B", BroadcastCommand.encodeAck(KEY, "B", seq, 25));
+        assertEquals(new HashSet<>(Arrays.asList("A")), engine.finish(seq));
+    }
+}
@@ -0,0 +1,433 @@
+package lv.ideaportriga.blinds.controller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Firmware update against a simulated blind, runs on the development machine (host).
+ */
+public class DfuSessionTest {
+
+    /**
+     * Blind side of the DFU protocol. Callbacks are queued like a Handler would and
+     * delivered by {@link #runOne()}. With delayNotifications local write callbacks
+     * always come back before the blind's notifications, as they do on Android.
+     */
+    private static class SimulatedPeripheral implements DfuSession.Transport {
+        private final Deque<Runnable> events = new ArrayDeque<>();
+        private final Deque<Runnable> notifications = new ArrayDeque<>();
+        private boolean delayNotifications = false;
+        private int busyControlWrites = 0; // control writes to refuse as busy
+        private DfuSession session;
+        private int maxMtu = DfuSession.REQUESTED_MTU;
+        private boolean mtuSupported = true;
+        private boolean connected = true;
+        private int disconnectAt = -1; // drop the link once this many bytes were received
+        private int corruptAt = -1; // flip received byte at this offset
+        private int lostWriteAt = -1; // lose write callback of the packet with this offset
+        private byte lostResponse = 0; // lose the next response to this opcode
+        private boolean silent = false; // blind stops answering control requests
+        private ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private int expectedSize = 0;
+        private int prn = 0;
+        private int sincePrn = 0; // packets received since OP_SET_PRN
+        private int receiptsDelivered = 0;
+        private int packetBytes = 0;
+        private int maxPacket = 0;
+        private int maxAhead = 0; // most packets received ahead of delivered receipts
+        private boolean activated = false;
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            if (!mtuSupported) {
+                return false;
+            }
+            events.add(new Runnable() {
+                @Override
+                public void run() {
+                    session.onMtuChanged(Math.min(mtu, maxMtu));
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeControl(byte[] data) {
+            if (!connected) {
+                return false;
+            }
+            if (busyControlWrites > 0) {
+                busyControlWrites--;
+                return false;
+            }
+            switch (data[0]) {
+                case DfuSession.OP_SET_PRN:
+                    prn = (data[1] & 0xFF) | ((data[2] & 0xFF) << 8);
+                    sincePrn = 0;
+                    receiptsDelivered = 0;
+                    respond(data[0], DfuSession.STATUS_SUCCESS, false);
+                    break;
+                case DfuSession.OP_SELECT:
+                case DfuSession.OP_CRC:
+                    respond(data[0], DfuSession.STATUS_SUCCESS, true);
+                    break;
+                case DfuSession.OP_CREATE:
+                    expectedSize = (int) DfuSession.getUint32(data, 1);
+                    received.reset();
+                    respond(data[0], DfuSession.STATUS_SUCCESS, false);
+                    break;
+                case DfuSession.OP_EXECUTE:
+                    activated = received.size() == expectedSize && DfuSession.getUint32(data, 1) == crc();
+                    respond(data[0], activated ? DfuSession.STATUS_SUCCESS : 0x05, false);
+                    break;
+                default:
+                    respond(data[0], (byte) 0x02, false);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean writePacket(final byte[] data) {
+            if (!connected) {
+                return false;
+            }
+            events.add(new Runnable() {
+                @Override
+                public void run() {
+                    int offset = received.size();
+                    received.write(data, 0, data.length);
+                    if (corruptAt >= offset && corruptAt < received.size()) {
+                        byte[] bytes = received.toByteArray();
+                        bytes[corruptAt] ^= 0xFF;
+                        received.reset();
+                        received.write(bytes, 0, bytes.length);
+                    }
+                    packetBytes += data.length;
+                    maxPacket = Math.max(maxPacket, data.length);
+                    sincePrn++;
+                    maxAhead = Math.max(maxAhead, sincePrn - prn * receiptsDelivered);
+                    if (lostWriteAt >= offset && lostWriteAt < received.size()) {
+                        lostWriteAt = -1;
+                    } else {
+                        session.onPacketWritten(true);
+                    }
+                    if (disconnectAt >= 0 && received.size() >= disconnectAt) {
+                        disconnectAt = -1;
+                        disconnect();
+                    } else if (prn > 0 && sincePrn % prn == 0) {
+                        notifyControl(DfuSession.OP_CRC, DfuSession.STATUS_SUCCESS, true, true);
+                    }
+                }
+            });
+            return true;
+        }
+
+        private void respond(byte op, byte status, boolean withCrc) {
+            notifyControl(op, status, withCrc, false);
+        }
+
+        private void notifyControl(byte op, byte status, boolean withCrc, final boolean isReceipt) {
+            if (!isReceipt && (silent || op == lostResponse)) {
+                lostResponse = 0;
+                return;
+            }
+            final byte[] data = new byte[withCrc ? 11 : 3];
+            data[0] = DfuSession.OP_RESPONSE;
+            data[1] = op;
+            data[2] = status;
+            if (withCrc) {
+                DfuSession.putUint32(data, 3, received.size());
+                DfuSession.putUint32(data, 7, crc());
+            }
+            (delayNotifications ? notifications : events).add(new Runnable() {
+                @Override
+                public void run() {
+                    if (isReceipt) {
+                        receiptsDelivered++;
+                    }
+                    session.onControl(data);
+                }
+            });
+        }
+
+        private long crc() {
+            CRC32 c = new CRC32();
+            c.update(received.toByteArray());
+            return c.getValue();
+        }
+
+        void disconnect() {
+            connected = false;
+            events.clear();
+            notifications.clear();
+            session.onDisconnected();
+        }
+
+        void connect() {
+            connected = true;
+            session.start();
+        }
+
+        boolean runOne() {
+            Runnable r = events.poll();
+            if (r == null) {
+                r = notifications.poll();
+            }
+            if (r != null) {
+                r.run();
+            }
+            return r != null;
+        }
+    }
+
+    private static class RecordingListener implements DfuSession.Listener {
+        private final List<Integer> progress = new ArrayList<>();
+        private int completed = 0;
+        private String error = null;
+
+        @Override
+        public void onProgress(DfuSession session, int sent, int total) {
+            progress.add(sent);
+        }
+
+        @Override
+        public void onComplete(DfuSession session) {
+            completed++;
+        }
+
+        @Override
+        public void onError(DfuSession session, String reason) {
+            error = reason;
+        }
+    }
+
+    private byte[] image;
+    private SimulatedPeripheral peripheral;
+    private RecordingListener listener;
+    private DfuSession session;
+
+    @Before
+    public void setUp() {
+        image = new byte[10000];
+        new Random(42).nextBytes(image);
+        peripheral = new SimulatedPeripheral();
+        listener = new RecordingListener();
+        session = new DfuSession("A", image, peripheral, listener);
+        peripheral.session = session;
+    }
+
+    private void runUntilIdle() {
+        while (peripheral.runOne()) {
+            // deliver queued callbacks
+        }
+    }
+
+    @Test
+    public void update_completes() throws Exception {
+        session.start();
+        runUntilIdle();
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+        assertTrue(session.isFinished());
+        assertTrue(peripheral.activated);
+        assertArrayEquals(image, peripheral.received.toByteArray());
+        assertEquals(DfuSession.REQUESTED_MTU - 3, peripheral.maxPacket);
+        assertEquals(image.length, (int) listener.progress.get(listener.progress.size() - 1));
+    }
+
+    @Test
+    public void update_flowControlledByReceipts() throws Exception {
+        session.start();
+        runUntilIdle();
+        assertEquals(DfuSession.PRN, peripheral.prn);
+        assertTrue(peripheral.maxAhead <= DfuSession.WINDOW);
+        assertTrue(peripheral.maxAhead > DfuSession.PRN); // pipelined past the receipt
+        for (int i = 1; i < listener.progress.size(); i++) {
+            assertTrue(listener.progress.get(i) >= listener.progress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void update_completesWithDelayedNotifications() throws Exception {
+        peripheral.delayNotifications = true;
+        session.start();
+        runUntilIdle();
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+        assertTrue(peripheral.activated);
+        assertArrayEquals(image, peripheral.received.toByteArray());
+        assertTrue(peripheral.maxAhead <= DfuSession.WINDOW);
+    }
+
+    @Test
+    public void update_retriesBusyControlWrite() throws Exception {
+        peripheral.busyControlWrites = 2;
+        session.start();
+        runUntilIdle();
+        assertNull(listener.error);
+        assertEquals(0, listener.completed);
+        session.start(); // reconnection handler retry
+        runUntilIdle();
+        session.start();
+        runUntilIdle();
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+    }
+
+    @Test
+    public void abort_reportsError() throws Exception {
+        session.abort("Unknown device");
+        assertEquals("Unknown device", listener.error);
+        assertTrue(session.isFinished());
+        session.start();
+        runUntilIdle();
+        assertEquals(0, listener.completed);
+    }
+
+    @Test
+    public void update_defaultMtuWhenNotNegotiated() throws Exception {
+        peripheral.mtuSupported = false;
+        session.start();
+        runUntilIdle();
+        assertEquals(1, listener.completed);
+        assertEquals(DfuSession.DEFAULT_MTU - 3, peripheral.maxPacket);
+    }
+
+    @Test
+    public void update_resumesAfterDisconnect() throws Exception {
+        peripheral.disconnectAt = 6000;
+        session.start();
+        runUntilIdle();
+        assertEquals(0, listener.completed);
+        assertFalse(session.isFinished());
+        peripheral.connect();
+        runUntilIdle();
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+        assertArrayEquals(image, peripheral.received.toByteArray());
+        assertEquals(image.length, peripheral.packetBytes); // nothing sent twice
+    }
+
+    @Test
+    public void update_failsOnCrcMismatch() throws Exception {
+        peripheral.corruptAt = 100;
+        session.start();
+        runUntilIdle();
+        assertEquals(0, listener.completed);
+        assertNotNull(listener.error);
+        assertTrue(session.isFinished());
+        assertFalse(peripheral.activated);
+    }
+
+    private void stall() {
+        for (int i = 0; i < DfuSession.STALL_TICKS; i++) {
+            session.checkStalled(); // reconnection handler ticks
+        }
+        runUntilIdle();
+    }
+
+    @Test
+    public void update_resyncsAfterLostResponse() throws Exception {
+        peripheral.lostResponse = DfuSession.OP_SELECT;
+        session.start();
+        runUntilIdle();
+        assertEquals(0, listener.completed);
+        stall();
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+        assertTrue(peripheral.activated);
+    }
+
+    @Test
+    public void update_resyncsAfterLostPacketWrite() throws Exception {
+        peripheral.lostWriteAt = 5000;
+        session.start();
+        runUntilIdle();
+        assertEquals(0, listener.completed);
+        stall();
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+        assertArrayEquals(image, peripheral.received.toByteArray());
+        assertEquals(image.length, peripheral.packetBytes); // resumed, nothing sent twice
+    }
+
+    @Test
+    public void update_timesOutWhenBlindStopsAnswering() throws Exception {
+        session.start();
+        peripheral.silent = true;
+        runUntilIdle();
+        for (int i = 0; i < DfuSession.MAX_RESYNCS; i++) {
+            stall();
+            assertNull(listener.error);
+        }
+        stall();
+        assertEquals("Timed out", listener.error);
+        assertTrue(session.isFinished());
+        assertEquals(0, listener.completed);
+    }
+
+    @Test
+    public void checkStalled_ignoresProgressingUpdate() throws Exception {
+        session.start();
+        while (peripheral.runOne()) {
+            session.checkStalled(); // every callback is progress
+        }
+        assertNull(listener.error);
+        assertEquals(1, listener.completed);
+    }
+
+    @Test
+    public void scheduler_limitsParallelUpdates() throws Exception {
+        final DfuScheduler[] scheduler = new DfuScheduler[1];
+        final int[] maxRunning = new int[1];
+        final int[] completed = new int[1];
+        scheduler[0] = new DfuScheduler(2, new DfuScheduler.Starter() {
+            @Override
+            public void start(DfuSession s) {
+                maxRunning[0] = Math.max(maxRunning[0], scheduler[0].getRunning());
+                s.start();
+            }
+        });
+        List<SimulatedPeripheral> all = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final SimulatedPeripheral p = new SimulatedPeripheral();
+            p.session = new DfuSession("" + i, image, p, new RecordingListener() {
+                @Override
+                public void onComplete(DfuSession session) {
+                    completed[0]++;
+                    scheduler[0].done(session);
+                }
+            });
+            all.add(p);
+        }
+        for (SimulatedPeripheral p : all) {
+            scheduler[0].add(p.session);
+        }
+        // interleave blinds like a radio shared between connections
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            for (SimulatedPeripheral p : all) {
+                busy |= p.runOne();
+            }
+        }
+        assertEquals(5, completed[0]);
+        assertEquals(2, maxRunning[0]);
+        assertEquals(0, scheduler[0].getRunning());
+        assertEquals(0, scheduler[0].getQueued());
+        for (SimulatedPeripheral p : all) {
+            assertTrue(Arrays.equals(image, p.received.toByteArray()));
+        }
+    }
+}